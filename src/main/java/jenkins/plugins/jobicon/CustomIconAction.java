@@ -20,6 +20,7 @@ import hudson.model.Job;
 
 import java.io.IOException;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -30,6 +31,12 @@ import org.kohsuke.stapler.StaplerResponse;
  * This action accepts the query parameter {@code size} with these
  * acceptable values {@code 16x16}, {@code 24x24} and {@code 32x32}.
  * 
+ * Icons preloaded by {@link IconCache} are served from memory, the others
+ * are served by a redirection to the {@code userContent} URL. Since the
+ * action URL does not change when the job icon changes, the in-memory
+ * icons are served with an ETag built from the icon filename (its content
+ * digest) and must be revalidated by the browser.
+ * 
  * @author Jean-Christophe Sirot
  */
 public class CustomIconAction implements Action
@@ -76,6 +83,22 @@ public class CustomIconAction implements Action
 		CustomIconProperty prop = (CustomIconProperty) job.getProperty(CustomIconProperty.class);
 		String iconFilename = prop.iconfile;
 		String size = req.getParameter("size");
+		ImageUtils.Size iconSize = ImageUtils.Size.of(size);
+		IconCache.hit(iconSize, iconFilename);
+		byte[] data = IconCache.get(iconSize, iconFilename);
+		if (data != null) {
+			String etag = "\"" + iconSize.directory + "/" + iconFilename + "\"";
+			rsp.setHeader("ETag", etag);
+			rsp.setHeader("Cache-Control", "no-cache");
+			if (etag.equals(req.getHeader("If-None-Match"))) {
+				rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			rsp.setContentType("image/png");
+			rsp.setContentLength(data.length);
+			rsp.getOutputStream().write(data);
+			return;
+		}
 		rsp.sendRedirect(ImageUtils.getIconURL(iconFilename, size));
 	}
 
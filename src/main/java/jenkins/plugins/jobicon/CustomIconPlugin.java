@@ -20,7 +20,8 @@ import hudson.Plugin;
 import jenkins.model.Jenkins;
 
 /**
- * Handle migration of data between versions
+ * Handle migration of data between versions and starts the icon cache
+ * warm-up.
  *
  * @author Jean-Christophe Sirot
  */
@@ -37,5 +38,13 @@ public class CustomIconPlugin extends Plugin
 				ImageUtils.moveIcon(icon);
 			}
 		}
+		IconCache.startWarmUp();
+	}
+
+	@Override
+	public void stop() throws Exception
+	{
+		IconCache.save();
+		super.stop();
 	}
 }
@@ -0,0 +1,178 @@
+/*
+ *     Copyright 2013 Jean-Christophe Sirot <sirot@chelonix.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.jobicon;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.BallColor;
+import hudson.model.HealthReport;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+
+/**
+ * The values needed to render a job with its custom icon, computed once per
+ * job and cached until the job is built or its configuration is saved.
+ *
+ * The status color and the health report are kept as objects so their
+ * descriptions are still resolved in the locale of each request.
+ *
+ * @author Jean-Christophe Sirot
+ */
+public final class CustomIconRender
+{
+	/** Guarded by itself, as is {@link #generation}. */
+	private static final Map<Job, CustomIconRender> CACHE = new WeakHashMap<Job, CustomIconRender>();
+
+	/**
+	 * Bumped on every invalidation. A record computed while an invalidation
+	 * happened is returned but not cached since it may already be stale.
+	 */
+	private static long generation;
+
+	private final boolean customIcon;
+	private final BallColor iconColor;
+	private final HealthReport buildHealth;
+
+	private CustomIconRender(Job job)
+	{
+		this.customIcon = job.getProperty(CustomIconProperty.class) != null;
+		this.iconColor = job.getIconColor();
+		this.buildHealth = job.getBuildHealth();
+	}
+
+	/**
+	 * Returns the render values of a job, computing them if needed. The
+	 * views ({@code column.jelly} and the {@code jobLinkWithIcon} tag) call
+	 * it with {@code j:invokeStatic}.
+	 *
+	 * @param job the job
+	 * @return the cached render values
+	 */
+	public static CustomIconRender of(Job job)
+	{
+		long gen;
+		synchronized (CACHE) {
+			CustomIconRender render = CACHE.get(job);
+			if (render != null) {
+				return render;
+			}
+			gen = generation;
+		}
+		CustomIconRender render = new CustomIconRender(job);
+		synchronized (CACHE) {
+			if (gen == generation) {
+				CACHE.put(job, render);
+			}
+		}
+		return render;
+	}
+
+	/**
+	 * Discards the cached render values of a job.
+	 *
+	 * @param job the job
+	 */
+	static void invalidate(Job job)
+	{
+		synchronized (CACHE) {
+			CACHE.remove(job);
+			generation++;
+		}
+	}
+
+	/**
+	 * Indicates if the job has a custom icon.
+	 *
+	 * @return {@code true} if a {@link CustomIconProperty} is configured
+	 */
+	public boolean isCustomIcon()
+	{
+		return customIcon;
+	}
+
+	public BallColor getIconColor()
+	{
+		return iconColor;
+	}
+
+	/**
+	 * Returns the build status image name, same as {@link Job#getBuildStatusUrl()}.
+	 *
+	 * @return the image name
+	 */
+	public String getBuildStatusUrl()
+	{
+		return iconColor.getImage();
+	}
+
+	public HealthReport getBuildHealth()
+	{
+		return buildHealth;
+	}
+
+	/**
+	 * Invalidates the cached values when a build starts, completes or is
+	 * deleted since the status and health of the job change.
+	 */
+	@Extension
+	public static class RunListenerImpl extends RunListener<Run>
+	{
+		public RunListenerImpl()
+		{
+			super(Run.class);
+		}
+
+		@Override
+		public void onStarted(Run r, TaskListener listener)
+		{
+			invalidate(r.getParent());
+		}
+
+		@Override
+		public void onCompleted(Run r, TaskListener listener)
+		{
+			invalidate(r.getParent());
+		}
+
+		@Override
+		public void onDeleted(Run r)
+		{
+			invalidate(r.getParent());
+		}
+	}
+
+	/**
+	 * Invalidates the cached values when a job configuration is saved.
+	 */
+	@Extension
+	public static class SaveableListenerImpl extends SaveableListener
+	{
+		@Override
+		public void onChange(Saveable o, XmlFile file)
+		{
+			if (o instanceof Job) {
+				invalidate((Job) o);
+			}
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ *     Copyright 2013 Jean-Christophe Sirot <sirot@chelonix.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.jobicon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.PeriodicWork;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps track of the most frequently served icon variants and holds the
+ * hottest ones in memory.
+ *
+ * The hit counts are periodically saved in {@code JENKINS_HOME} and the
+ * saved list is used to preload the icons when the plugin starts. The
+ * counts are halved on each save so that icons which are no longer served
+ * fall off the list. The memory used by the preloaded icons is bounded by
+ * the system property
+ * {@code jenkins.plugins.jobicon.IconCache.memoryBudget} (in bytes).
+ *
+ * @author Jean-Christophe Sirot
+ */
+class IconCache
+{
+	private static final Logger LOGGER = Logger.getLogger(IconCache.class.getName());
+
+	static final String HOT_ICONS_FILE = "custom-job-icon-hot.txt";
+
+	static final long MEMORY_BUDGET =
+			Long.getLong(IconCache.class.getName() + ".memoryBudget", 4L * 1024 * 1024);
+
+	private static final ConcurrentMap<String, AtomicLong> HITS = new ConcurrentHashMap<String, AtomicLong>();
+
+	private static final Map<String, byte[]> ICONS = new ConcurrentHashMap<String, byte[]>();
+
+	/** Value of a count which is being removed. */
+	private static final long DEAD = -1;
+
+	/** Set when an icon has been served since the last save. */
+	private static final AtomicBoolean DIRTY = new AtomicBoolean();
+
+	private IconCache()
+	{
+	}
+
+	private static String key(ImageUtils.Size size, String filename)
+	{
+		return size.directory + "/" + filename;
+	}
+
+	/**
+	 * Records that an icon variant has been served.
+	 * @param size the icon size
+	 * @param filename the icon filename with the extension
+	 */
+	static void hit(ImageUtils.Size size, String filename)
+	{
+		add(key(size, filename), 1);
+		DIRTY.set(true);
+	}
+
+	/**
+	 * Adds to the count of an icon variant. A count of {@link #DEAD} has been
+	 * removed from {@link #HITS} by {@link #save()}; it is never incremented
+	 * so that no hit is lost, a new count is created instead.
+	 */
+	private static void add(String key, long delta)
+	{
+		for (;;) {
+			AtomicLong count = HITS.get(key);
+			if (count == null) {
+				count = new AtomicLong();
+				AtomicLong prev = HITS.putIfAbsent(key, count);
+				if (prev != null) {
+					count = prev;
+				}
+			}
+			long c = count.get();
+			if (c == DEAD) {
+				HITS.remove(key, count);
+			} else if (count.compareAndSet(c, c + delta)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the content of an icon variant if it has been preloaded.
+	 * @param size the icon size
+	 * @param filename the icon filename with the extension
+	 * @return the icon content or {@code null}
+	 */
+	static byte[] get(ImageUtils.Size size, String filename)
+	{
+		return ICONS.get(key(size, filename));
+	}
+
+	/**
+	 * Discards every variant of an icon.
+	 * @param filename the icon filename with the extension
+	 */
+	static void remove(String filename)
+	{
+		for (ImageUtils.Size size: ImageUtils.Size.values()) {
+			ICONS.remove(key(size, filename));
+			HITS.remove(key(size, filename));
+		}
+	}
+
+	/**
+	 * Forgets the hit counts and the preloaded icons.
+	 */
+	static void clear()
+	{
+		HITS.clear();
+		ICONS.clear();
+		DIRTY.set(false);
+	}
+
+	private static FilePath getHotIconsFile()
+	{
+		return Jenkins.getInstance().getRootPath().child(HOT_ICONS_FILE);
+	}
+
+	/**
+	 * Halves the hit counts, then saves the icon variants sorted by
+	 * decreasing count. Nothing is saved if no icon has been served since
+	 * the last save, so that an idle period does not wipe the list out.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	static synchronized void save() throws IOException, InterruptedException
+	{
+		if (!DIRTY.getAndSet(false)) {
+			return;
+		}
+		// halve the counts and snapshot them so that they do not change while sorting
+		Map<String, Long> snapshot = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> e: HITS.entrySet()) {
+			AtomicLong count = e.getValue();
+			long c;
+			do {
+				c = count.get();
+			} while (c != DEAD && !count.compareAndSet(c, c / 2));
+			if (c / 2 > 0) {
+				snapshot.put(e.getKey(), c / 2);
+			} else if (c != DEAD && count.compareAndSet(0, DEAD)) {
+				HITS.remove(e.getKey(), count);
+			}
+		}
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(snapshot.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2)
+			{
+				return e2.getValue().compareTo(e1.getValue());
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> e: entries) {
+			sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		}
+		getHotIconsFile().write(sb.toString(), "UTF-8");
+	}
+
+	/**
+	 * Reads the saved hit counts and loads the hottest icon variants into
+	 * memory until the memory budget is reached.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	static void warmUp() throws IOException, InterruptedException
+	{
+		FilePath file = getHotIconsFile();
+		if (!file.exists()) {
+			return;
+		}
+		FilePath iconDir = Jenkins.getInstance().getRootPath().child("userContent").child(ImageUtils.PATH);
+		long used = 0;
+		for (String line: file.readToString().split("\n")) {
+			String[] fields = line.trim().split(" ");
+			if (fields.length != 2) {
+				continue;
+			}
+			String key = fields[0];
+			long saved;
+			try {
+				saved = Long.parseLong(fields[1]);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (saved <= 0) {
+				continue;
+			}
+			add(key, saved);
+			FilePath icon = iconDir.child(key);
+			if (!icon.exists()) {
+				continue;
+			}
+			long length = icon.length();
+			if (used + length > MEMORY_BUDGET) {
+				continue;
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			icon.copyTo(out);
+			ICONS.put(key, out.toByteArray());
+			used += length;
+		}
+		LOGGER.log(Level.FINE, "Preloaded {0} custom icons ({1} bytes)", new Object[] {ICONS.size(), used});
+	}
+
+	/**
+	 * Starts the warm-up on a low-priority daemon thread.
+	 */
+	static void startWarmUp()
+	{
+		Thread t = new Thread("Custom job icon warm-up") {
+			@Override
+			public void run()
+			{
+				try {
+					warmUp();
+				} catch (Exception e) {
+					LOGGER.log(Level.WARNING, "Failed to preload custom icons", e);
+				}
+			}
+		};
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Periodically saves the hit counts.
+	 */
+	@Extension
+	public static class SaveWork extends PeriodicWork
+	{
+		@Override
+		public long getRecurrencePeriod()
+		{
+			return MIN * 30;
+		}
+
+		@Override
+		protected void doRun() throws Exception
+		{
+			save();
+		}
+	}
+}
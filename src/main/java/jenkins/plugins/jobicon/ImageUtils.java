@@ -83,6 +83,20 @@ class ImageUtils
 		static boolean isValid(String size) {
 			return "16x16".equals(size) | "24x24".equals(size) | "32x32".equals(size);
 		}
+
+		/**
+		 * Returns the size matching the SSxSS notation, {@link #ORIGIN} if the size is not valid.
+		 * @param size the icon size
+		 * @return the matching size
+		 */
+		static Size of(String size) {
+			for (Size s: values()) {
+				if (s != ORIGIN && s.directory.equals(size)) {
+					return s;
+				}
+			}
+			return ORIGIN;
+		}
 	}
 
 	/**
@@ -145,6 +159,7 @@ class ImageUtils
 		deleteIcon(iconDir, ImageUtils.Size.SIZE_16, id + ".png");
 		deleteIcon(iconDir, ImageUtils.Size.SIZE_24, id + ".png");
 		deleteIcon(iconDir, ImageUtils.Size.SIZE_32, id + ".png");
+		IconCache.remove(id + ".png");
 	}
 
 	public static void moveIcon(FilePath icon) throws IOException, InterruptedException
@@ -0,0 +1,90 @@
+/*
+ *     Copyright 2013 Jean-Christophe Sirot <sirot@chelonix.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.jobicon;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+
+import com.gargoylesoftware.htmlunit.WebResponse;
+import hudson.model.FreeStyleProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the conditional GET of the icons served from memory.
+ *
+ * @author Jean-Christophe Sirot
+ */
+public class CustomIconActionTest
+{
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private String url;
+
+	@Before
+	public void preloadIcon() throws Exception
+	{
+		IconCache.clear();
+		BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		ImageUtils.storeIcon("icon.png", out.toByteArray());
+		j.jenkins.getRootPath().child(IconCache.HOT_ICONS_FILE).write("24x24/icon.png 1\n", "UTF-8");
+		IconCache.warmUp();
+
+		FreeStyleProject p = j.createFreeStyleProject();
+		p.addProperty(new CustomIconProperty("icon.png"));
+		url = j.getURL() + p.getUrl() + "customIcon/?size=24x24";
+	}
+
+	private WebResponse get(String etag) throws Exception
+	{
+		JenkinsRule.WebClient wc = j.createWebClient();
+		wc.setThrowExceptionOnFailingStatusCode(false);
+		if (etag != null) {
+			wc.addRequestHeader("If-None-Match", etag);
+		}
+		return wc.getPage(url).getWebResponse();
+	}
+
+	@Test
+	public void servesPreloadedIconWithETag() throws Exception
+	{
+		WebResponse rsp = get(null);
+		assertEquals(200, rsp.getStatusCode());
+		assertEquals("image/png", rsp.getContentType());
+		assertEquals("\"24x24/icon.png\"", rsp.getResponseHeaderValue("ETag"));
+		assertEquals("no-cache", rsp.getResponseHeaderValue("Cache-Control"));
+	}
+
+	@Test
+	public void notModifiedWhenETagMatches() throws Exception
+	{
+		assertEquals(304, get("\"24x24/icon.png\"").getStatusCode());
+	}
+
+	@Test
+	public void servesIconWhenETagIsStale() throws Exception
+	{
+		assertEquals(200, get("\"24x24/other.png\"").getStatusCode());
+	}
+}
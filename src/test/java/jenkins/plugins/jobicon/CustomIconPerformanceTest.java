@@ -0,0 +1,378 @@
+/*
+ *     Copyright 2013 Jean-Christophe Sirot <sirot@chelonix.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.jobicon;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ListView;
+import hudson.plugins.view.dashboard.Dashboard;
+import hudson.util.PluginServletFilter;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the time and the memory allocated to render the plugin pages on
+ * a large instance and checks them against budgets.
+ *
+ * This test only runs with the {@code perf} Maven profile (or with the
+ * system property {@code jobicon.perf} set to {@code true}). The instance
+ * size, the iterations and the budgets are configured with the
+ * {@code jobicon.perf.*} system properties. The results are written as JSON
+ * to {@code jobicon.perf.report} so that plugin versions can be compared.
+ *
+ * When {@code jobicon.perf.baseline} names the report of a previous run,
+ * the budgets are the baseline figures increased by
+ * {@code jobicon.perf.tolerance} percent instead of the default budgets.
+ *
+ * @author Jean-Christophe Sirot
+ */
+public class CustomIconPerformanceTest
+{
+	private static final int JOBS = Integer.getInteger("jobicon.perf.jobs", 5000);
+	private static final int ICONS = Integer.getInteger("jobicon.perf.icons", 500);
+	private static final int BUILT_JOBS = Integer.getInteger("jobicon.perf.builtJobs", 20);
+	private static final int ITERATIONS = Integer.getInteger("jobicon.perf.iterations", 5);
+	private static final int THREADS = Integer.getInteger("jobicon.perf.threads", 8);
+	private static final int REQUESTS = Integer.getInteger("jobicon.perf.requests", 2000);
+	private static final int TOLERANCE = Integer.getInteger("jobicon.perf.tolerance", 20);
+
+	/** Bytes allocated by the server threads while serving requests. */
+	private static final AtomicLong SERVER_BYTES = new AtomicLong();
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@BeforeClass
+	public static void enabled()
+	{
+		Assume.assumeTrue(Boolean.getBoolean("jobicon.perf"));
+	}
+
+	@Test
+	public void renderBudgets() throws Exception
+	{
+		List<String> icons = createIcons();
+		List<FreeStyleProject> jobs = createJobs(icons);
+		PluginServletFilter.addFilter(new AllocationFilter());
+
+		ListView view = new ListView("icons");
+		view.setIncludeRegex(".*");
+		view.getColumns().add(new CustomIconColumn());
+		j.jenkins.addView(view);
+
+		Dashboard dashboard = new Dashboard("dashboard");
+		dashboard.setIncludeRegex(".*");
+		dashboard.getTopPortlets().add(new CustomIconJobsPortlet("grid", "24x24", 4, false));
+		dashboard.getBottomPortlets().add(new CustomIconLatestBuilds("latest", BUILT_JOBS));
+		j.jenkins.addView(dashboard);
+
+		// default budgets for the default instance size, per iteration
+		JSONObject baseline = readBaseline();
+		List<Result> results = new ArrayList<Result>();
+		results.add(measure(new Result("listView", baseline, 15000, 1536L << 20), goTo(view.getUrl())));
+		results.add(measure(new Result("dashboard", baseline, 15000, 1536L << 20), goTo(dashboard.getUrl())));
+		results.add(measure(new Result("configure", baseline, 3000, 256L << 20),
+				goTo(jobs.get(0).getUrl() + "configure")));
+		results.add(measure(new Result("customIconBurst", baseline, 10000, 512L << 20), burst(jobs)));
+
+		writeReport(results);
+		for (Result r: results) {
+			assertTrue(r.name + " took " + r.averageMs() + " ms, budget is " + r.budgetMs + " ms",
+					r.averageMs() <= r.budgetMs);
+			if (r.averageBytes() >= 0) {
+				assertTrue(r.name + " allocated " + r.averageBytes() + " bytes, budget is " + r.budgetBytes + " bytes",
+						r.averageBytes() <= r.budgetBytes);
+			}
+		}
+	}
+
+	private List<String> createIcons() throws Exception
+	{
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < ICONS; i++) {
+			BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = image.createGraphics();
+			g.setColor(new Color(i));
+			g.fillRect(0, 0, 64, 64);
+			g.dispose();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", out);
+			byte[] data = out.toByteArray();
+			String name = Hex.encodeHexString(MessageDigest.getInstance("SHA1").digest(data)) + ".png";
+			ImageUtils.storeIcon(name, data);
+			names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Creates the jobs, every other one with a custom icon, and builds a few
+	 * of them so that the latest builds portlet has something to show.
+	 */
+	private List<FreeStyleProject> createJobs(List<String> icons) throws Exception
+	{
+		List<FreeStyleProject> jobs = new ArrayList<FreeStyleProject>();
+		for (int i = 0; i < JOBS; i++) {
+			FreeStyleProject p = j.createFreeStyleProject("job" + i);
+			if (i % 2 == 0) {
+				p.addProperty(new CustomIconProperty(icons.get(i % icons.size())));
+				jobs.add(p);
+			}
+			if (i < BUILT_JOBS) {
+				j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+			}
+		}
+		return jobs;
+	}
+
+	private Callable<Object> goTo(final String url)
+	{
+		return new Callable<Object>() {
+			public Object call() throws Exception
+			{
+				JenkinsRule.WebClient wc = j.createWebClient();
+				wc.setJavaScriptEnabled(false);
+				return wc.goTo(url);
+			}
+		};
+	}
+
+	/**
+	 * Sends {@code REQUESTS} icon requests to the jobs with a custom icon
+	 * from {@code THREADS} concurrent clients.
+	 */
+	private Callable<Object> burst(final List<FreeStyleProject> jobs)
+	{
+		return new Callable<Object>() {
+			public Object call() throws Exception
+			{
+				ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+				try {
+					List<Future<Object>> futures = new ArrayList<Future<Object>>();
+					for (int t = 0; t < THREADS; t++) {
+						final int offset = t;
+						futures.add(executor.submit(new Callable<Object>() {
+							public Object call() throws Exception
+							{
+								JenkinsRule.WebClient wc = j.createWebClient();
+								for (int i = offset; i < REQUESTS; i += THREADS) {
+									FreeStyleProject p = jobs.get(i % jobs.size());
+									wc.goTo(p.getUrl() + "customIcon/?size=24x24", "image/png");
+								}
+								return null;
+							}
+						}));
+					}
+					for (Future<Object> f: futures) {
+						f.get();
+					}
+				} finally {
+					executor.shutdown();
+					executor.awaitTermination(1, TimeUnit.MINUTES);
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Runs the task once to warm up, then {@code ITERATIONS} times while
+	 * measuring the elapsed time and the memory allocated by the server.
+	 */
+	private Result measure(Result r, Callable<Object> task) throws Exception
+	{
+		task.call();
+		SERVER_BYTES.set(0);
+		for (int i = 0; i < ITERATIONS; i++) {
+			long start = System.nanoTime();
+			task.call();
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			r.totalMs += elapsed;
+			r.maxMs = Math.max(r.maxMs, elapsed);
+		}
+		r.totalBytes = allocationSupported() ? SERVER_BYTES.get() : -1;
+		return r;
+	}
+
+	private static boolean allocationSupported()
+	{
+		return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean;
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread, or 0 if the
+	 * JVM cannot tell.
+	 */
+	private static long threadAllocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return 0;
+		}
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Adds the memory allocated by the request thread while serving each
+	 * request to {@link #SERVER_BYTES}, so that the client side (HtmlUnit
+	 * parsing the pages) is not counted.
+	 */
+	private static final class AllocationFilter implements Filter
+	{
+		public void init(FilterConfig config) throws ServletException
+		{
+		}
+
+		public void doFilter(ServletRequest req, ServletResponse rsp, FilterChain chain)
+				throws IOException, ServletException
+		{
+			long start = threadAllocatedBytes();
+			try {
+				chain.doFilter(req, rsp);
+			} finally {
+				SERVER_BYTES.addAndGet(threadAllocatedBytes() - start);
+			}
+		}
+
+		public void destroy()
+		{
+		}
+	}
+
+	private static JSONObject readBaseline() throws IOException
+	{
+		String path = System.getProperty("jobicon.perf.baseline");
+		if (path == null) {
+			return null;
+		}
+		return JSONObject.fromObject(FileUtils.readFileToString(new File(path), "UTF-8"));
+	}
+
+	private void writeReport(List<Result> results) throws Exception
+	{
+		JSONObject report = new JSONObject();
+		report.put("pluginVersion", System.getProperty("jobicon.perf.version", "unknown"));
+		report.put("jenkinsVersion", Jenkins.VERSION);
+		report.put("javaVersion", System.getProperty("java.version"));
+		report.put("jobs", JOBS);
+		report.put("icons", ICONS);
+		report.put("iterations", ITERATIONS);
+		report.put("threads", THREADS);
+		report.put("requests", REQUESTS);
+		JSONArray scenarios = new JSONArray();
+		for (Result r: results) {
+			JSONObject o = new JSONObject();
+			o.put("name", r.name);
+			o.put("averageMs", r.averageMs());
+			o.put("maxMs", r.maxMs);
+			o.put("averageAllocatedBytes", r.averageBytes());
+			o.put("budgetMs", r.budgetMs);
+			o.put("budgetBytes", r.budgetBytes);
+			scenarios.add(o);
+		}
+		report.put("scenarios", scenarios);
+
+		File file = new File(System.getProperty("jobicon.perf.report", "target/jobicon-perf.json"));
+		file.getParentFile().mkdirs();
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			w.write(report.toString(2));
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * The measures of a scenario. The budgets are, by order of precedence,
+	 * the system properties {@code jobicon.perf.budget.<name>.ms} and
+	 * {@code jobicon.perf.budget.<name>.bytes}, the baseline figures plus the
+	 * tolerance, or the given defaults.
+	 */
+	private static final class Result
+	{
+		final String name;
+		final long budgetMs;
+		final long budgetBytes;
+		long totalMs;
+		long maxMs;
+		long totalBytes;
+
+		Result(String name, JSONObject baseline, long defaultMs, long defaultBytes)
+		{
+			this.name = name;
+			if (baseline != null) {
+				for (Object o: baseline.getJSONArray("scenarios")) {
+					JSONObject s = (JSONObject) o;
+					if (name.equals(s.getString("name"))) {
+						defaultMs = s.getLong("averageMs") * (100 + TOLERANCE) / 100;
+						if (s.getLong("averageAllocatedBytes") >= 0) {
+							defaultBytes = s.getLong("averageAllocatedBytes") * (100 + TOLERANCE) / 100;
+						}
+					}
+				}
+			}
+			this.budgetMs = Long.getLong("jobicon.perf.budget." + name + ".ms", defaultMs);
+			this.budgetBytes = Long.getLong("jobicon.perf.budget." + name + ".bytes", defaultBytes);
+		}
+
+		long averageMs()
+		{
+			return totalMs / ITERATIONS;
+		}
+
+		long averageBytes()
+		{
+			return totalBytes < 0 ? -1 : totalBytes / ITERATIONS;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ *     Copyright 2013 Jean-Christophe Sirot <sirot@chelonix.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.jobicon;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+
+import hudson.FilePath;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the save, decay and reload of the hot icon list.
+ *
+ * @author Jean-Christophe Sirot
+ */
+public class IconCacheTest
+{
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Before
+	public void clear()
+	{
+		IconCache.clear();
+	}
+
+	private FilePath hotIcons()
+	{
+		return j.jenkins.getRootPath().child(IconCache.HOT_ICONS_FILE);
+	}
+
+	private static void hit(ImageUtils.Size size, String filename, int count)
+	{
+		for (int i = 0; i < count; i++) {
+			IconCache.hit(size, filename);
+		}
+	}
+
+	@Test
+	public void saveHalvesAndSortsCounts() throws Exception
+	{
+		hit(ImageUtils.Size.SIZE_24, "a.png", 5);
+		hit(ImageUtils.Size.SIZE_16, "b.png", 8);
+		IconCache.save();
+		assertEquals("16x16/b.png 4\n24x24/a.png 2\n", hotIcons().readToString());
+	}
+
+	@Test
+	public void saveDropsDecayedCounts() throws Exception
+	{
+		hit(ImageUtils.Size.SIZE_24, "a.png", 4);
+		hit(ImageUtils.Size.SIZE_24, "b.png", 1);
+		IconCache.save();
+		assertEquals("24x24/a.png 2\n", hotIcons().readToString());
+		hit(ImageUtils.Size.SIZE_24, "a.png", 1);
+		IconCache.save();
+		assertEquals("24x24/a.png 1\n", hotIcons().readToString());
+	}
+
+	@Test
+	public void saveSkipsIdlePeriods() throws Exception
+	{
+		hit(ImageUtils.Size.SIZE_24, "a.png", 2);
+		IconCache.save();
+		hotIcons().delete();
+		IconCache.save();
+		assertFalse(hotIcons().exists());
+	}
+
+	@Test
+	public void warmUpPreloadsAndMergesSavedCounts() throws Exception
+	{
+		BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		ImageUtils.storeIcon("icon.png", out.toByteArray());
+		hotIcons().write("24x24/icon.png 6\n24x24/missing.png 2\n", "UTF-8");
+
+		IconCache.warmUp();
+		ByteArrayOutputStream resized = new ByteArrayOutputStream();
+		j.jenkins.getRootPath().child("userContent").child(ImageUtils.PATH)
+				.child("24x24").child("icon.png").copyTo(resized);
+		assertArrayEquals(resized.toByteArray(), IconCache.get(ImageUtils.Size.SIZE_24, "icon.png"));
+		assertNull(IconCache.get(ImageUtils.Size.SIZE_16, "icon.png"));
+		assertNull(IconCache.get(ImageUtils.Size.SIZE_24, "missing.png"));
+
+		IconCache.hit(ImageUtils.Size.SIZE_24, "icon.png");
+		IconCache.save();
+		assertEquals("24x24/icon.png 3\n24x24/missing.png 1\n", hotIcons().readToString());
+	}
+}